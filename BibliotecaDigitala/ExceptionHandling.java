@@ -8,7 +8,11 @@ public class Carte {
     private String autor;
     private int anAparitie;
     private String isbn;
-    private boolean imprumutata;
+    private volatile boolean imprumutata;
+    // Precalculate pentru sortare si cautare, ca sa nu platim colatia la fiecare comparatie.
+    private final byte[] cheieTitlu;
+    private final byte[] cheieAutor;
+    private final String titluSimplificat;
 
     public Carte(String titlu, String autor, int anAparitie, String isbn) {
         this.titlu = titlu;
@@ -16,6 +20,16 @@ public class Carte {
         this.anAparitie = anAparitie;
         this.isbn = isbn;
         this.imprumutata = false;
+        this.cheieTitlu = ColatieRomana.cheie(titlu);
+        this.cheieAutor = ColatieRomana.cheie(autor);
+        this.titluSimplificat = ColatieRomana.simplifica(titlu);
+    }
+
+    // Pentru vederile din CatalogMapat, care citesc campurile din fisier prin getteri.
+    Carte() {
+        this.cheieTitlu = null;
+        this.cheieAutor = null;
+        this.titluSimplificat = null;
     }
 
     public String getTitlu() {
@@ -34,16 +48,34 @@ public class Carte {
         return isbn;
     }
 
+    byte[] cheieTitlu() {
+        return cheieTitlu;
+    }
+
+    byte[] cheieAutor() {
+        return cheieAutor;
+    }
+
+    String titluSimplificat() {
+        return titluSimplificat;
+    }
+
+    // Acelasi titlu, ignorand diacriticele, majusculele si spatiile in plus.
+    public boolean areAcelasiTitlu(Carte alta) {
+        return titluSimplificat().equals(alta.titluSimplificat());
+    }
+
     public boolean isImprumutata() {
         return imprumutata;
     }
 
-    public void setImprumutata(boolean imprumutata) {
+    // Doar Biblioteca o schimba, impreuna cu registrul imprumuturilor.
+    void setImprumutata(boolean imprumutata) {
         this.imprumutata = imprumutata;
     }
 
     public String toString() {
-        return "Titlu: " + titlu + ", Autor: " + autor + ", An aparitie: " + anAparitie + ", ISBN: " + isbn + ", Imprumutata: " + imprumutata;
+        return "Titlu: " + getTitlu() + ", Autor: " + getAutor() + ", An aparitie: " + getAnAparitie() + ", ISBN: " + getIsbn() + ", Imprumutata: " + isImprumutata();
     }
 }
 === END FILE ===
@@ -51,15 +83,17 @@ public class Carte {
 === FILE: Membru.java ===
 package biblioteca;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class Membru {
     private String nume;
     private String idMembru;
-    private int nrCartiImprumutate;
+    // Se schimba doar odata cu registrul de imprumuturi al bibliotecii, deci nu ajunge negativ.
+    private final AtomicInteger nrCartiImprumutate = new AtomicInteger();
 
     public Membru(String nume, String idMembru) {
         this.nume = nume;
         this.idMembru = idMembru;
-        this.nrCartiImprumutate = 0;
     }
 
     public String getNume() {
@@ -71,15 +105,16 @@ public class Membru {
     }
 
     public int getNrCartiImprumutate() {
-        return nrCartiImprumutate;
+        return nrCartiImprumutate.get();
     }
 
-    public void incrementeazaNrCartiImprumutate() {
-        this.nrCartiImprumutate++;
+    // Doar Biblioteca le apeleaza, odata cu registrul de imprumuturi.
+    void incrementeazaNrCartiImprumutate() {
+        nrCartiImprumutate.incrementAndGet();
     }
 
-    public void decrementeazaNrCartiImprumutate() {
-        this.nrCartiImprumutate--;
+    void decrementeazaNrCartiImprumutate() {
+        nrCartiImprumutate.decrementAndGet();
     }
 
     public String toString() {
@@ -91,51 +126,155 @@ public class Membru {
 === FILE: Biblioteca.java ===
 package biblioteca;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Biblioteca {
-    private List<Carte> carti;
+    private static final int NUMAR_LACATE = 64;
+
+    private volatile Catalog catalog;
+    // Catalogul binar de sub cel din memorie, daca a fost deschis. Vederile peste cartile lui sunt
+    // efemere si isi citesc starea de imprumut din registru.
+    private volatile CatalogMapat catalogMapat;
     private List<Membru> membri;
+    private final ConcurrentHashMap<String, Membru> membriDupaID = new ConcurrentHashMap<>();
+    // Registrul imprumuturilor: ISBN -> idMembru. Doar cine apare aici poate returna cartea.
+    private final ConcurrentHashMap<String, String> imprumuturi = new ConcurrentHashMap<>();
+    // Lacate pe ISBN, impartite pe benzi: doua vederi ale aceleiasi carti mapate iau acelasi lacat.
+    private final Object[] lacate = new Object[NUMAR_LACATE];
 
     public Biblioteca() {
-        this.carti = new ArrayList<>();
+        this.catalog = new Catalog();
         this.membri = new ArrayList<>();
+        for (int i = 0; i < lacate.length; i++) {
+            lacate[i] = new Object();
+        }
+    }
+
+    // O carte cu ISBN-ul deja in catalogul binar este sarita, ca la importaCatalog.
+    public synchronized void adaugaCarte(Carte carte) {
+        CatalogMapat mapat = catalogMapat;
+        if (mapat != null && mapat.dupaISBN(carte.getIsbn()) != null) {
+            return;
+        }
+        catalog.adauga(carte);
     }
 
-    public void adaugaCarte(Carte carte) {
-        this.carti.add(carte);
+    // Incarca un fisier cu cate o carte pe linie (titlu, autor, an, ISBN despartite de separator), citit
+    // in paralel. Cartile cu ISBN deja in catalog sunt sarite; noul catalog devine vizibil dintr-o data.
+    public ImportCatalog.Rezultat importaCatalog(Path fisier, char separator, int paralelism) throws IOException {
+        ImportCatalog.Citire citire = ImportCatalog.citeste(fisier, separator, paralelism);
+        synchronized (this) {
+            List<Carte> noi = citire.carti;
+            CatalogMapat mapat = catalogMapat;
+            if (mapat != null) {
+                noi = new ArrayList<>(noi);
+                noi.removeIf(carte -> mapat.dupaISBN(carte.getIsbn()) != null);
+            }
+            Catalog vechi = catalog;
+            Catalog nou = Catalog.cuCarti(vechi, noi);
+            catalog = nou;
+            int adaugate = nou.carti.size() - vechi.carti.size();
+            return new ImportCatalog.Rezultat(adaugate, citire.carti.size() - adaugate, citire.respinse);
+        }
+    }
+
+    // Ataseaza un catalog binar scris cu salveazaCatalogBinar. Cartile lui nu sunt copiate pe heap, iar
+    // la cautare au prioritate fata de cele adaugate in memorie, ca si cum ar fi fost adaugate primele.
+    // Doar titlurile si autorii lor intra in autocompletare, asa ca deschiderea parcurge o data fisierul.
+    public synchronized void deschideCatalogBinar(Path fisier) throws IOException {
+        if (catalogMapat != null) {
+            throw new IllegalStateException("Catalogul binar este deja deschis");
+        }
+        CatalogMapat mapat = CatalogMapat.deschide(fisier, imprumuturi);
+        List<Carte> vederi = new ArrayList<>(mapat.numarCarti());
+        for (int i = 0; i < mapat.numarCarti(); i++) {
+            vederi.add(mapat.carte(i));
+        }
+        catalog = catalog.cuTermeni(vederi);
+        catalogMapat = mapat;
+    }
+
+    // Scrie toate cartile, cele din catalogul binar si cele din memorie, intr-un nou catalog binar.
+    public synchronized void salveazaCatalogBinar(Path fisier) throws IOException {
+        List<Carte> toate = new ArrayList<>();
+        CatalogMapat mapat = catalogMapat;
+        for (int i = 0; mapat != null && i < mapat.numarCarti(); i++) {
+            toate.add(mapat.carte(i));
+        }
+        toate.addAll(catalog.carti);
+        CatalogMapat.scrie(fisier, toate);
     }
 
-    public void adaugaMembru(Membru membru) {
+    public synchronized void adaugaMembru(Membru membru) {
         this.membri.add(membru);
+        membriDupaID.putIfAbsent(membru.getIdMembru(), membru);
     }
 
     public Carte gasesteCarteDupaISBN(String isbn) {
-        for (Carte carte : carti) {
-            if (carte.getIsbn().equals(isbn)) {
-                return carte;
-            }
-        }
-        return null;
+        CatalogMapat mapat = catalogMapat;
+        Carte vedere = mapat == null ? null : mapat.dupaISBN(isbn);
+        return vedere != null ? vedere : catalog.cartiDupaISBN.get(isbn);
     }
 
 
     public Membru gasesteMembruDupaID(String idMembru) {
-        for (Membru membru : membri) {
-            if (membru.getIdMembru().equals(idMembru)) {
-                return membru;
-            }
+        return membriDupaID.get(idMembru);
+    }
+
+    public List<Carte> gasesteCartiDupaTitlu(String titlu) {
+        CatalogMapat mapat = catalogMapat;
+        List<Carte> gasite = mapat == null ? new ArrayList<>() : mapat.dupaTitlu(titlu);
+        gasite.addAll(catalog.indexTitluri.dupaTitlu(titlu));
+        return gasite;
+    }
+
+    // Titluri si autori care incep cu prefixul, cei mai ceruti primii.
+    public List<String> sugereaza(String prefix) {
+        return catalog.autocompletare.sugestii(prefix, Autocompletare.TOP);
+    }
+
+    public List<Carte> gasesteCartiIntreAni(int deLa, int panaLa) {
+        CatalogMapat mapat = catalogMapat;
+        List<Carte> dinMemorie = catalog.indexAni.intreAni(deLa, panaLa);
+        if (mapat == null) {
+            return dinMemorie;
         }
-        return null;
+        return interclaseaza(mapat.intreAni(deLa, panaLa), dinMemorie,
+                Comparator.comparingInt(Carte::getAnAparitie));
+    }
+
+    public int numaraCartiIntreAni(int deLa, int panaLa) {
+        CatalogMapat mapat = catalogMapat;
+        int dinMemorie = catalog.indexAni.numaraIntreAni(deLa, panaLa);
+        return mapat == null ? dinMemorie : dinMemorie + mapat.numaraIntreAni(deLa, panaLa);
+    }
+
+    public Map<Integer, Integer> histogramaPeDecenii(int deLa, int panaLa) {
+        CatalogMapat mapat = catalogMapat;
+        Map<Integer, Integer> histograma = catalog.indexAni.histogramaPeDecenii(deLa, panaLa);
+        if (mapat != null) {
+            histograma.replaceAll((deceniu, numar) ->
+                    numar + mapat.numaraIntreAni(Math.max(deceniu, deLa), Math.min(deceniu + 9, panaLa)));
+        }
+        return histograma;
+    }
+
+    // ID-ul membrului care are cartea, sau null daca este pe raft.
+    public String gasesteImprumutator(String isbn) {
+        return imprumuturi.get(isbn);
     }
 
     public void imprumutaCarte(String isbn, String idMembru) {
         Carte carte = gasesteCarteDupaISBN(isbn);
         Membru membru = gasesteMembruDupaID(idMembru);
-        if (carte != null && membru != null && !carte.isImprumutata()) {
-            carte.setImprumutata(true);
-            membru.incrementeazaNrCartiImprumutate();
+        if (carte != null && membru != null && imprumuta(carte, membru)) {
+            catalog.autocompletare.imprumutata(carte);
             System.out.println("Carte imprumutata cu succes!");
         } else {
             System.out.println("Eroare la imprumutarea cartii.");
@@ -145,22 +284,78 @@ public class Biblioteca {
     public void returneazaCarte(String isbn, String idMembru) {
         Carte carte = gasesteCarteDupaISBN(isbn);
         Membru membru = gasesteMembruDupaID(idMembru);
-        if (carte != null && membru != null && carte.isImprumutata()) {
-            carte.setImprumutata(false);
-            membru.decrementeazaNrCartiImprumutate();
+        if (carte != null && membru != null && returneaza(carte, membru)) {
             System.out.println("Carte returnata cu succes!");
         } else {
             System.out.println("Eroare la returnarea cartii.");
         }
     }
 
-    public void afiseazaCarti() {
-        for (Carte carte : carti) {
-            System.out.println(carte);
+    // Registrul, indicatorul cartii si contorul membrului se schimba impreuna, sub lacatul ISBN-ului.
+    private boolean imprumuta(Carte carte, Membru membru) {
+        synchronized (lacat(carte.getIsbn())) {
+            if (imprumuturi.putIfAbsent(carte.getIsbn(), membru.getIdMembru()) != null) {
+                return false;
+            }
+            carte.setImprumutata(true);
+            membru.incrementeazaNrCartiImprumutate();
+            return true;
+        }
+    }
+
+    private boolean returneaza(Carte carte, Membru membru) {
+        synchronized (lacat(carte.getIsbn())) {
+            if (!imprumuturi.remove(carte.getIsbn(), membru.getIdMembru())) {
+                return false;
+            }
+            carte.setImprumutata(false);
+            membru.decrementeazaNrCartiImprumutate();
+            return true;
+        }
+    }
+
+    private Object lacat(String isbn) {
+        return lacate[isbn.hashCode() & (NUMAR_LACATE - 1)];
+    }
+
+    // In ordine alfabetica dupa titlu, apoi autor. Catalogul binar e deja sortat, asa ca doar il
+    // interclasam cu cartile din memorie. Vederea curenta ramane aceeasi pana e afisata, iar cheile ei
+    // de colatie se calculeaza o singura data.
+    public synchronized void afiseazaCarti() {
+        List<Carte> dinMemorie = catalog.indexTitluri.inOrdine();
+        CatalogMapat mapat = catalogMapat;
+        int numarMapate = mapat == null ? 0 : mapat.numarCarti();
+        int i = 0;
+        int j = 0;
+        Carte mapata = numarMapate > 0 ? mapat.carte(0) : null;
+        while (mapata != null || j < dinMemorie.size()) {
+            if (mapata != null && (j == dinMemorie.size()
+                    || ColatieRomana.DUPA_TITLU_SI_AUTOR.compare(mapata, dinMemorie.get(j)) <= 0)) {
+                System.out.println(mapata);
+                i++;
+                mapata = i < numarMapate ? mapat.carte(i) : null;
+            } else {
+                System.out.println(dinMemorie.get(j++));
+            }
+        }
+    }
+
+    // La egalitate, cartile din catalogul binar vin primele.
+    private static List<Carte> interclaseaza(List<Carte> mapate, List<Carte> dinMemorie, Comparator<Carte> ordine) {
+        List<Carte> rezultat = new ArrayList<>(mapate.size() + dinMemorie.size());
+        int i = 0;
+        int j = 0;
+        while (i < mapate.size() || j < dinMemorie.size()) {
+            if (j == dinMemorie.size() || (i < mapate.size() && ordine.compare(mapate.get(i), dinMemorie.get(j)) <= 0)) {
+                rezultat.add(mapate.get(i++));
+            } else {
+                rezultat.add(dinMemorie.get(j++));
+            }
         }
+        return rezultat;
     }
 
-    public void afiseazaMembri() {
+    public synchronized void afiseazaMembri() {
         for (Membru membru : membri) {
             System.out.println(membru);
         }
@@ -168,6 +363,1627 @@ public class Biblioteca {
 }
 === END FILE ===
 
+=== FILE: IndexAni.java ===
+package biblioteca;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Index pe anul aparitiei: pentru fiecare an cu carti, lista lor in ordinea adaugarii, plus un
+// arbore Fenwick cu numarul de carti pe an. Listarea unui interval costa O(log n + k), numararea
+// O(log ani). Anii acceptati sunt intre ANUL_MINIM si ANUL_MAXIM.
+public class IndexAni {
+    public static final int ANUL_MINIM = -3000;
+    public static final int ANUL_MAXIM = 2999;
+
+    private static final class ListaCarti {
+        Carte[] carti = new Carte[4];
+        int marime;
+
+        ListaCarti() {
+        }
+
+        ListaCarti(ListaCarti alta, int loc) {
+            carti = Arrays.copyOf(alta.carti, Math.max(4, alta.marime + loc));
+            marime = alta.marime;
+        }
+
+        void adauga(Carte carte) {
+            if (marime == carti.length) {
+                carti = Arrays.copyOf(carti, marime * 2);
+            }
+            carti[marime++] = carte;
+        }
+    }
+
+    private final TreeMap<Integer, ListaCarti> cartiPeAn = new TreeMap<>();
+    private final int[] fenwick;
+
+    public IndexAni() {
+        fenwick = new int[ANUL_MAXIM - ANUL_MINIM + 2];
+    }
+
+    private IndexAni(int[] fenwick) {
+        this.fenwick = fenwick;
+    }
+
+    // Pentru import: copiem arborele Fenwick si listele pe ani ale indexului vechi, cu loc pentru
+    // cartile noi, in loc sa reinseram fiecare carte veche. Anii tuturor cartilor noi sunt verificati
+    // inainte de orice modificare.
+    static IndexAni cuCarti(IndexAni vechi, List<Carte> noi) {
+        int[] noiPeAn = new int[ANUL_MAXIM - ANUL_MINIM + 1];
+        for (Carte carte : noi) {
+            noiPeAn[verificaAn(carte) - ANUL_MINIM]++;
+        }
+        IndexAni nou;
+        synchronized (vechi) {
+            nou = new IndexAni(vechi.fenwick.clone());
+            for (Map.Entry<Integer, ListaCarti> intrare : vechi.cartiPeAn.entrySet()) {
+                int an = intrare.getKey();
+                nou.cartiPeAn.put(an, new ListaCarti(intrare.getValue(), noiPeAn[an - ANUL_MINIM]));
+            }
+        }
+        for (Carte carte : noi) {
+            nou.adauga(carte);
+        }
+        return nou;
+    }
+
+    public synchronized void adauga(Carte carte) {
+        int an = verificaAn(carte);
+        cartiPeAn.computeIfAbsent(an, a -> new ListaCarti()).adauga(carte);
+        for (int i = an - ANUL_MINIM + 1; i < fenwick.length; i += i & -i) {
+            fenwick[i]++;
+        }
+    }
+
+    private static int verificaAn(Carte carte) {
+        int an = carte.getAnAparitie();
+        if (an < ANUL_MINIM || an > ANUL_MAXIM) {
+            throw new IllegalArgumentException("An de aparitie in afara intervalului suportat: " + an);
+        }
+        return an;
+    }
+
+    // Cartile cu anul in [deLa, panaLa], crescator dupa an.
+    public synchronized List<Carte> intreAni(int deLa, int panaLa) {
+        List<Carte> rezultat = new ArrayList<>();
+        if (deLa > panaLa) {
+            return rezultat;
+        }
+        for (ListaCarti lista : cartiPeAn.subMap(deLa, true, panaLa, true).values()) {
+            rezultat.addAll(Arrays.asList(lista.carti).subList(0, lista.marime));
+        }
+        return rezultat;
+    }
+
+    public synchronized int numaraIntreAni(int deLa, int panaLa) {
+        deLa = Math.max(deLa, ANUL_MINIM);
+        panaLa = Math.min(panaLa, ANUL_MAXIM);
+        if (deLa > panaLa) {
+            return 0;
+        }
+        return prefix(panaLa) - prefix(deLa - 1);
+    }
+
+    // Numarul de carti pe fiecare deceniu atins de [deLa, panaLa], cheia fiind primul an al deceniului.
+    public synchronized Map<Integer, Integer> histogramaPeDecenii(int deLa, int panaLa) {
+        // Limitat la anii acceptati, ca deceniu += 10 sa nu depaseasca Integer.MAX_VALUE.
+        deLa = Math.max(deLa, ANUL_MINIM);
+        panaLa = Math.min(panaLa, ANUL_MAXIM);
+        Map<Integer, Integer> histograma = new LinkedHashMap<>();
+        for (int deceniu = Math.floorDiv(deLa, 10) * 10; deceniu <= panaLa; deceniu += 10) {
+            histograma.put(deceniu, numaraIntreAni(Math.max(deceniu, deLa), Math.min(deceniu + 9, panaLa)));
+        }
+        return histograma;
+    }
+
+    private int prefix(int an) {
+        int suma = 0;
+        for (int i = an - ANUL_MINIM + 1; i > 0; i -= i & -i) {
+            suma += fenwick[i];
+        }
+        return suma;
+    }
+}
+=== END FILE ===
+
+=== FILE: PerformantaIndexAni.java ===
+package biblioteca;
+
+import java.util.Random;
+
+// Incarca un catalog mare (implicit 5M titluri; 20M cu -Xmx8g si argumentul 20000000), apoi masoara
+// numararea si listarea pe intervale de ani fata de o parcurgere a tuturor cartilor.
+public class PerformantaIndexAni {
+    public static void main(String[] args) {
+        int numarCarti = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+        Biblioteca biblioteca = new Biblioteca();
+        Random random = new Random(1);
+        Carte[] toate = new Carte[numarCarti];
+        long start = System.nanoTime();
+        for (int i = 0; i < numarCarti; i++) {
+            int an = 1450 + (int) Math.min(575, Math.abs(random.nextGaussian()) * 150);
+            toate[i] = new Carte("Titlu", "Autor", 2025 - (an - 1450), Integer.toString(i));
+            biblioteca.adaugaCarte(toate[i]);
+        }
+        System.out.printf("%,d carti adaugate in %,d ms%n", numarCarti, (System.nanoTime() - start) / 1_000_000);
+
+        start = System.nanoTime();
+        int numarate = 0;
+        for (int i = 0; i < 100_000; i++) {
+            numarate += biblioteca.numaraCartiIntreAni(1800, 1950);
+        }
+        System.out.printf("numarare 1800-1950: %,d carti, %.0f ns pe interogare%n",
+                numarate / 100_000, (System.nanoTime() - start) / 100_000.0);
+
+        start = System.nanoTime();
+        int listate = biblioteca.gasesteCartiIntreAni(1940, 1945).size();
+        System.out.printf("listare 1940-1945: %,d carti in %.2f ms%n", listate, (System.nanoTime() - start) / 1e6);
+
+        start = System.nanoTime();
+        int parcurse = 0;
+        for (Carte carte : toate) {
+            if (carte.getAnAparitie() >= 1800 && carte.getAnAparitie() <= 1950) {
+                parcurse++;
+            }
+        }
+        System.out.printf("parcurgere completa pentru 1800-1950: %,d carti in %.2f ms%n", parcurse, (System.nanoTime() - start) / 1e6);
+        System.out.println("pe decenii 1900-1949: " + biblioteca.histogramaPeDecenii(1900, 1949));
+    }
+}
+=== END FILE ===
+
+=== FILE: ColatieRomana.java ===
+package biblioteca;
+
+import java.text.CollationElementIterator;
+import java.text.Collator;
+import java.text.Normalizer;
+import java.text.ParseException;
+import java.text.RuleBasedCollator;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+// Ordinea alfabetica romaneasca: a < ă < â < b, i < î, s < ș, t < ț. Regulile ro din JDK pun â
+// inaintea lui ă si trateaza ș/ț (cu virgula) ca accente, asa ca le scriem aici peste regulile de baza.
+//
+// Cheia unei carti se calculeaza o singura data, la creare, si se compara octet cu octet. Formatul e
+// compact: ponderile primare, un 0, ponderile secundare pe cate un octet, un 0, apoi cele tertiare.
+// Separatorul 0 trebuie sa fie sub orice pondere, altfel un sir fara ponderi primare ("-") s-ar
+// compara cu octetii primelor litere ale celuilalt. O pondere primara (1..65535) incepe deci cu
+// octetul mare plus 1 si ocupa 2 octeti; cele cu octetul mare 0xFE sau 0xFF trec pe 3 octeti dupa un
+// 0xFF. Ponderile secundare si tertiare sunt mici (sub 120), asa ca plus 1 le tine nenule.
+//
+// getCollationKey din JDK costa cateva microsecunde pe titlu, asa ca pentru literele latine (sub
+// U+0250) folosim elementele de colatie precalculate per caracter; restul trece prin
+// CollationElementIterator, cu acelasi format.
+public final class ColatieRomana {
+    private static final String REGULI_RO =
+            "& A < ă, Ă < â, Â & I < î, Î & S < ș, Ș, ş, Ş & T < ț, Ț, ţ, Ţ";
+    private static final char LIMITA_TABEL = 'ɐ';
+    private static final int PRIMAR_LUNG = 0xFE00;
+    private static final RuleBasedCollator COLATOR;
+    private static final int[][] ELEMENTE = new int[LIMITA_TABEL][];
+    private static final String[] SIMPLIFICATE = new String[LIMITA_TABEL];
+    private static final Pattern SEMNE_DIACRITICE = Pattern.compile("\\p{M}+");
+
+    static {
+        try {
+            RuleBasedCollator baza = (RuleBasedCollator) Collator.getInstance(Locale.ROOT);
+            COLATOR = new RuleBasedCollator(baza.getRules() + REGULI_RO);
+        } catch (ParseException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+        for (char c = 0; c < LIMITA_TABEL; c++) {
+            ELEMENTE[c] = elemente(COLATOR.getCollationElementIterator(String.valueOf(c)), new int[2]);
+            SIMPLIFICATE[c] = c <= ' ' ? " " : faraDiacritice(String.valueOf(c));
+        }
+    }
+
+    // Iteratorul tine stare in colator; fiecare fir primeste copia lui.
+    private static final ThreadLocal<RuleBasedCollator> COLATOR_FIR =
+            ThreadLocal.withInitial(() -> (RuleBasedCollator) COLATOR.clone());
+
+    public static final Comparator<Carte> DUPA_TITLU_SI_AUTOR = (a, b) -> {
+        int dupaTitlu = compara(a.cheieTitlu(), b.cheieTitlu());
+        return dupaTitlu != 0 ? dupaTitlu : compara(a.cheieAutor(), b.cheieAutor());
+    };
+
+    private ColatieRomana() {
+    }
+
+    public static byte[] cheie(String text) {
+        int[] elemente = new int[text.length() + 4];
+        int numar = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= LIMITA_TABEL) {
+                elemente = elemente(COLATOR_FIR.get().getCollationElementIterator(text), elemente);
+                numar = elemente.length;
+                break;
+            }
+            for (int element : ELEMENTE[c]) {
+                if (numar == elemente.length) {
+                    elemente = Arrays.copyOf(elemente, numar * 2);
+                }
+                elemente[numar++] = element;
+            }
+        }
+        return codifica(elemente, numar);
+    }
+
+    public static int compara(byte[] a, byte[] b) {
+        return Arrays.compareUnsigned(a, b);
+    }
+
+    // Forma folosita la egalitate: fara diacritice, litere mici, spatiile si caracterele de control
+    // comasate intr-un singur spatiu.
+    public static String simplifica(String text) {
+        StringBuilder rezultat = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= LIMITA_TABEL) {
+                return faraDiacritice(text).replaceAll("[\\x00-\\x20]+", " ").trim();
+            }
+            String simplu = SIMPLIFICATE[c];
+            if (!simplu.equals(" ")) {
+                rezultat.append(simplu);
+            } else if (rezultat.length() > 0 && rezultat.charAt(rezultat.length() - 1) != ' ') {
+                rezultat.append(' ');
+            }
+        }
+        int lungime = rezultat.length();
+        if (lungime > 0 && rezultat.charAt(lungime - 1) == ' ') {
+            rezultat.setLength(lungime - 1);
+        }
+        return rezultat.toString();
+    }
+
+    private static String faraDiacritice(String text) {
+        String descompus = Normalizer.normalize(text, Normalizer.Form.NFD);
+        return SEMNE_DIACRITICE.matcher(descompus).replaceAll("").toLowerCase(Locale.ROOT);
+    }
+
+    // Elementele nenule, in ordine; rezultatul are exact lungimea lor.
+    private static int[] elemente(CollationElementIterator iterator, int[] tampon) {
+        int numar = 0;
+        for (int element = iterator.next(); element != CollationElementIterator.NULLORDER; element = iterator.next()) {
+            if (element == 0) {
+                continue;
+            }
+            if (numar == tampon.length) {
+                tampon = Arrays.copyOf(tampon, numar * 2);
+            }
+            tampon[numar++] = element;
+        }
+        return Arrays.copyOf(tampon, numar);
+    }
+
+    private static byte[] codifica(int[] elemente, int numar) {
+        int octetiPrimari = 0;
+        for (int i = 0; i < numar; i++) {
+            int primar = CollationElementIterator.primaryOrder(elemente[i]);
+            if (primar != 0) {
+                octetiPrimari += primar >= PRIMAR_LUNG ? 3 : 2;
+            }
+        }
+        byte[] cheie = new byte[octetiPrimari + 1 + numar + 1 + numar];
+        int poz = 0;
+        for (int i = 0; i < numar; i++) {
+            int primar = CollationElementIterator.primaryOrder(elemente[i]);
+            if (primar >= PRIMAR_LUNG) {
+                cheie[poz++] = (byte) 0xFF;
+                cheie[poz++] = (byte) ((primar >>> 8) - 0xFE);
+                cheie[poz++] = (byte) primar;
+            } else if (primar != 0) {
+                cheie[poz++] = (byte) ((primar >>> 8) + 1);
+                cheie[poz++] = (byte) primar;
+            }
+        }
+        poz++;
+        for (int i = 0; i < numar; i++) {
+            cheie[poz++] = (byte) (CollationElementIterator.secondaryOrder(elemente[i]) + 1);
+        }
+        poz++;
+        for (int i = 0; i < numar; i++) {
+            cheie[poz++] = (byte) (CollationElementIterator.tertiaryOrder(elemente[i]) + 1);
+        }
+        return cheie;
+    }
+}
+=== END FILE ===
+
+=== FILE: IndexTitluri.java ===
+package biblioteca;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Cartile sortate dupa titlu si autor in ordinea romaneasca, plus un index pe titlul fara diacritice.
+// Ambele se actualizeaza la fiecare carte adaugata; comparatiile folosesc cheile precalculate din Carte.
+// Grupurile de carti sunt tablouri inlocuite la fiecare adaugare, nu modificate, asa ca un index copiat
+// le poate folosi in comun cu cel vechi.
+public class IndexTitluri {
+    private final TreeMap<Carte, Carte[]> sortate;
+    private final Map<String, Carte[]> dupaTitluSimplificat;
+
+    public IndexTitluri() {
+        sortate = new TreeMap<>(ColatieRomana.DUPA_TITLU_SI_AUTOR);
+        dupaTitluSimplificat = new HashMap<>();
+    }
+
+    // Pentru import: arborele vechi se copiaza in timp liniar, fara comparatii (TreeMap il construieste
+    // direct dintr-o harta deja sortata), iar dintre carti doar cele noi sunt inserate.
+    static IndexTitluri cuCarti(IndexTitluri vechi, List<Carte> noi) {
+        IndexTitluri nou;
+        synchronized (vechi) {
+            nou = new IndexTitluri(new TreeMap<>(vechi.sortate), new HashMap<>(vechi.dupaTitluSimplificat));
+        }
+        nou.adaugaToate(noi);
+        return nou;
+    }
+
+    private IndexTitluri(TreeMap<Carte, Carte[]> sortate, Map<String, Carte[]> dupaTitluSimplificat) {
+        this.sortate = sortate;
+        this.dupaTitluSimplificat = dupaTitluSimplificat;
+    }
+
+    public synchronized void adauga(Carte carte) {
+        Carte[] singura = {carte};
+        sortate.merge(carte, singura, IndexTitluri::concateneaza);
+        dupaTitluSimplificat.merge(carte.titluSimplificat(), singura, IndexTitluri::concateneaza);
+    }
+
+    private static Carte[] concateneaza(Carte[] grup, Carte[] singura) {
+        Carte[] nou = Arrays.copyOf(grup, grup.length + 1);
+        nou[grup.length] = singura[0];
+        return nou;
+    }
+
+    // Pentru import: sortam intai (in paralel, stabil), ca inserarile in arbore sa vina in ordine.
+    public synchronized void adaugaToate(List<Carte> carti) {
+        Carte[] sortate = carti.toArray(new Carte[0]);
+        Arrays.parallelSort(sortate, ColatieRomana.DUPA_TITLU_SI_AUTOR);
+        for (Carte carte : sortate) {
+            adauga(carte);
+        }
+    }
+
+    public synchronized List<Carte> inOrdine() {
+        List<Carte> rezultat = new ArrayList<>();
+        for (Carte[] grup : sortate.values()) {
+            Collections.addAll(rezultat, grup);
+        }
+        return rezultat;
+    }
+
+    // "Mandrie si prejudecata" gaseste si "Mândrie și Prejudecată".
+    public synchronized List<Carte> dupaTitlu(String titlu) {
+        Carte[] gasite = dupaTitluSimplificat.get(ColatieRomana.simplifica(titlu));
+        return gasite == null ? Collections.emptyList() : new ArrayList<>(Arrays.asList(gasite));
+    }
+}
+=== END FILE ===
+
+=== FILE: Autocompletare.java ===
+package biblioteca;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Trie comprimat peste titlurile si autorii simplificati (fara diacritice, litere mici). Fiecare nod
+// tine primele TOP completari din subarborele lui, ordonate dupa popularitate, asa ca o interogare
+// coboara doar pe prefix si citeste lista gata facuta. Popularitatea unui termen e numarul de carti
+// care il poarta plus numarul de imprumuturi; ea doar creste, deci la fiecare crestere e suficient sa
+// actualizam listele de pe drumul de la radacina la termen.
+public class Autocompletare {
+    public static final int TOP = 8;
+
+    private static final char[] FARA_LITERE = new char[0];
+    private static final Nod[] FARA_COPII = new Nod[0];
+    private static final int[] GOL = new int[0];
+    private static final String[] FARA_CHEI = new String[0];
+
+    private static final class Nod {
+        String eticheta;
+        char[] primeLitere = FARA_LITERE;
+        Nod[] copii = FARA_COPII;
+        int[] top = GOL;
+
+        Nod(String eticheta) {
+            this.eticheta = eticheta;
+        }
+
+        Nod copil(char litera) {
+            int poz = Arrays.binarySearch(primeLitere, litera);
+            return poz >= 0 ? copii[poz] : null;
+        }
+
+        void puneCopil(Nod copil) {
+            char litera = copil.eticheta.charAt(0);
+            int poz = Arrays.binarySearch(primeLitere, litera);
+            if (poz >= 0) {
+                copii[poz] = copil;
+                return;
+            }
+            poz = -poz - 1;
+            primeLitere = insereaza(primeLitere, poz, litera);
+            Nod[] noi = new Nod[copii.length + 1];
+            System.arraycopy(copii, 0, noi, 0, poz);
+            noi[poz] = copil;
+            System.arraycopy(copii, poz, noi, poz + 1, copii.length - poz);
+            copii = noi;
+        }
+    }
+
+    private Nod radacina = new Nod("");
+    private final Map<String, Integer> idDupaCheie;
+    private String[] afisare;
+    private int[] popularitate;
+    private int numarTermeni;
+    // Cheile din care a fost construit trie-ul, sortate, si id-urile lor; nu mai sunt toate cheile daca
+    // intre timp s-a adaugat un termen nou, iar atunci urmatorul import le sorteaza din nou pe toate.
+    private String[] cheiSortate = FARA_CHEI;
+    private int[] iduriSortate = GOL;
+
+    public Autocompletare() {
+        this(1024);
+    }
+
+    private Autocompletare(int capacitate) {
+        idDupaCheie = new HashMap<>(capacitate * 4 / 3 + 1);
+        afisare = new String[capacitate];
+        popularitate = new int[capacitate];
+    }
+
+    // Pentru import: termenii vechi cu popularitatea lor plus cei ai cartilor noi. In loc de o coborare
+    // pentru fiecare carte, numaram intai, sortam cheile si construim trie-ul de jos in sus; lista unui
+    // nod se obtine din listele copiilor. Daca cheile vechi sunt inca toate in cheiSortate, sortam doar
+    // cheile noi si le interclasam cu ele.
+    static Autocompletare cuCarti(Autocompletare vechi, List<Carte> noi) {
+        Autocompletare nou;
+        String[] vechiChei;
+        int[] vechiIduri;
+        synchronized (vechi) {
+            nou = new Autocompletare(Math.max(1024, vechi.numarTermeni + noi.size() * 2));
+            nou.idDupaCheie.putAll(vechi.idDupaCheie);
+            System.arraycopy(vechi.afisare, 0, nou.afisare, 0, vechi.numarTermeni);
+            System.arraycopy(vechi.popularitate, 0, nou.popularitate, 0, vechi.numarTermeni);
+            nou.numarTermeni = vechi.numarTermeni;
+            boolean sortate = vechi.cheiSortate.length == vechi.numarTermeni;
+            vechiChei = sortate ? vechi.cheiSortate : null;
+            vechiIduri = vechi.iduriSortate;
+        }
+        List<String> cheiNoi = new ArrayList<>();
+        for (Carte carte : noi) {
+            nou.numara(carte.getTitlu(), carte.titluSimplificat(), cheiNoi);
+            nou.numara(carte.getAutor(), ColatieRomana.simplifica(carte.getAutor()), cheiNoi);
+        }
+        if (vechiChei != null) {
+            String[] chei = cheiNoi.toArray(new String[0]);
+            Arrays.parallelSort(chei);
+            nou.interclaseaza(vechiChei, vechiIduri, chei);
+        } else {
+            String[] chei = nou.idDupaCheie.keySet().toArray(new String[0]);
+            Arrays.parallelSort(chei);
+            nou.interclaseaza(chei, nou.iduri(chei), FARA_CHEI);
+        }
+        if (nou.numarTermeni > 0) {
+            nou.radacina = nou.construieste(0, nou.numarTermeni, 0, "");
+        }
+        return nou;
+    }
+
+    // Cheile sortate vechi si cele noi, sortate si ele, intr-o singura ordine, cu id-urile alaturi.
+    private void interclaseaza(String[] vechiChei, int[] vechiIduri, String[] noiChei) {
+        cheiSortate = new String[vechiChei.length + noiChei.length];
+        iduriSortate = new int[cheiSortate.length];
+        int i = 0;
+        int j = 0;
+        for (int k = 0; k < cheiSortate.length; k++) {
+            if (j == noiChei.length || (i < vechiChei.length && vechiChei[i].compareTo(noiChei[j]) < 0)) {
+                cheiSortate[k] = vechiChei[i];
+                iduriSortate[k] = vechiIduri[i++];
+            } else {
+                cheiSortate[k] = noiChei[j];
+                iduriSortate[k] = idDupaCheie.get(noiChei[j++]);
+            }
+        }
+    }
+
+    private int[] iduri(String[] chei) {
+        int[] iduri = new int[chei.length];
+        for (int k = 0; k < chei.length; k++) {
+            iduri[k] = idDupaCheie.get(chei[k]);
+        }
+        return iduri;
+    }
+
+    public synchronized void adauga(Carte carte) {
+        creste(carte.getTitlu(), 1);
+        creste(carte.getAutor(), 1);
+    }
+
+    // Un imprumut creste termenii cartii cu cat i-ar creste o carte noua.
+    public void imprumutata(Carte carte) {
+        adauga(carte);
+    }
+
+    // Cel mult limita completari pentru prefix, cele mai populare primele.
+    public synchronized List<String> sugestii(String prefix, int limita) {
+        String cheie = ColatieRomana.simplifica(prefix);
+        Nod nod = radacina;
+        int poz = 0;
+        while (poz < cheie.length()) {
+            nod = nod.copil(cheie.charAt(poz));
+            if (nod == null) {
+                return new ArrayList<>();
+            }
+            int comun = prefixComun(nod.eticheta, cheie, poz);
+            if (comun < nod.eticheta.length() && poz + comun < cheie.length()) {
+                return new ArrayList<>();
+            }
+            poz += comun;
+        }
+        List<String> rezultat = new ArrayList<>();
+        for (int i = 0; i < nod.top.length && i < limita; i++) {
+            rezultat.add(afisare[nod.top[i]]);
+        }
+        return rezultat;
+    }
+
+    private void creste(String text, int cat) {
+        String cheie = ColatieRomana.simplifica(text);
+        if (cheie.isEmpty()) {
+            return;
+        }
+        Integer id = idDupaCheie.get(cheie);
+        if (id == null) {
+            id = termenNou(cheie, text);
+        }
+        popularitate[id] += cat;
+        Nod nod = radacina;
+        int poz = 0;
+        while (true) {
+            ofera(nod, id);
+            if (poz == cheie.length()) {
+                return;
+            }
+            nod = nod.copil(cheie.charAt(poz));
+            poz += nod.eticheta.length();
+        }
+    }
+
+    private void numara(String text, String cheie, List<String> cheiNoi) {
+        if (cheie.isEmpty()) {
+            return;
+        }
+        Integer id = idDupaCheie.get(cheie);
+        if (id == null) {
+            id = inregistreaza(cheie, text);
+            cheiNoi.add(cheie);
+        }
+        popularitate[id]++;
+    }
+
+    private int inregistreaza(String cheie, String text) {
+        int id = numarTermeni++;
+        if (id == afisare.length) {
+            afisare = Arrays.copyOf(afisare, id * 2);
+            popularitate = Arrays.copyOf(popularitate, id * 2);
+        }
+        afisare[id] = text;
+        idDupaCheie.put(cheie, id);
+        return id;
+    }
+
+    // Nodul pentru cheile sortate [de, pana), care au in comun primele adancime caractere.
+    private Nod construieste(int de, int pana, int adancime, String eticheta) {
+        String[] chei = cheiSortate;
+        Nod nod = new Nod(eticheta);
+        int[] top = new int[TOP];
+        int inTop = 0;
+        int i = de;
+        if (chei[i].length() == adancime) {
+            inTop = pastreaza(top, inTop, iduriSortate[i]);
+            i++;
+        }
+        StringBuilder litere = new StringBuilder();
+        List<Nod> copii = new ArrayList<>();
+        while (i < pana) {
+            char litera = chei[i].charAt(adancime);
+            int j = i + 1;
+            while (j < pana && chei[j].charAt(adancime) == litera) {
+                j++;
+            }
+            int capat = adancime + 1;
+            while (capat < chei[i].length() && capat < chei[j - 1].length()
+                    && chei[i].charAt(capat) == chei[j - 1].charAt(capat)) {
+                capat++;
+            }
+            Nod copil = construieste(i, j, capat, chei[i].substring(adancime, capat));
+            for (int id : copil.top) {
+                inTop = pastreaza(top, inTop, id);
+            }
+            litere.append(litera);
+            copii.add(copil);
+            i = j;
+        }
+        nod.primeLitere = litere.length() == 0 ? FARA_LITERE : litere.toString().toCharArray();
+        nod.copii = copii.isEmpty() ? FARA_COPII : copii.toArray(new Nod[0]);
+        nod.top = Arrays.copyOf(top, inTop);
+        return nod;
+    }
+
+    private int pastreaza(int[] top, int inTop, int id) {
+        int poz;
+        if (inTop < TOP) {
+            poz = inTop++;
+        } else if (popularitate[top[TOP - 1]] >= popularitate[id]) {
+            return inTop;
+        } else {
+            poz = TOP - 1;
+        }
+        while (poz > 0 && popularitate[top[poz - 1]] < popularitate[id]) {
+            top[poz] = top[poz - 1];
+            poz--;
+        }
+        top[poz] = id;
+        return inTop;
+    }
+
+    private int termenNou(String cheie, String text) {
+        int id = inregistreaza(cheie, text);
+
+        Nod nod = radacina;
+        int poz = 0;
+        while (poz < cheie.length()) {
+            Nod urmator = nod.copil(cheie.charAt(poz));
+            if (urmator == null) {
+                nod.puneCopil(new Nod(cheie.substring(poz)));
+                return id;
+            }
+            int comun = prefixComun(urmator.eticheta, cheie, poz);
+            if (comun < urmator.eticheta.length()) {
+                // Rupem muchia: nodul intermediar are aceleasi completari ca fostul copil.
+                Nod mijloc = new Nod(urmator.eticheta.substring(0, comun));
+                mijloc.top = urmator.top.clone();
+                urmator.eticheta = urmator.eticheta.substring(comun);
+                mijloc.puneCopil(urmator);
+                nod.puneCopil(mijloc);
+                urmator = mijloc;
+            }
+            nod = urmator;
+            poz += comun;
+        }
+        return id;
+    }
+
+    // Popularitatea termenului tocmai a crescut: urca in lista nodului sau intra in locul ultimului.
+    private void ofera(Nod nod, int id) {
+        int[] top = nod.top;
+        int poz = 0;
+        while (poz < top.length && top[poz] != id) {
+            poz++;
+        }
+        if (poz == top.length) {
+            if (top.length < TOP) {
+                top = Arrays.copyOf(top, top.length + 1);
+            } else if (popularitate[top[TOP - 1]] >= popularitate[id]) {
+                return;
+            }
+            poz = top.length - 1;
+            top[poz] = id;
+        }
+        while (poz > 0 && popularitate[top[poz - 1]] < popularitate[id]) {
+            top[poz] = top[poz - 1];
+            poz--;
+        }
+        top[poz] = id;
+        nod.top = top;
+    }
+
+    private static int prefixComun(String eticheta, String cheie, int start) {
+        int maxim = Math.min(eticheta.length(), cheie.length() - start);
+        int i = 0;
+        while (i < maxim && eticheta.charAt(i) == cheie.charAt(start + i)) {
+            i++;
+        }
+        return i;
+    }
+
+    private static char[] insereaza(char[] litere, int poz, char litera) {
+        char[] noi = new char[litere.length + 1];
+        System.arraycopy(litere, 0, noi, 0, poz);
+        noi[poz] = litera;
+        System.arraycopy(litere, poz, noi, poz + 1, litere.length - poz);
+        return noi;
+    }
+}
+=== END FILE ===
+
+=== FILE: PerformantaAutocompletare.java ===
+package biblioteca;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Random;
+
+// Incarca un catalog sintetic (implicit 2M titluri; 20M cu -Xmx16g si argumentul 20000000), face
+// imprumuturi cu distributie inclinata spre cateva carti, apoi masoara timpul unei sugestii.
+public class PerformantaAutocompletare {
+    private static final String[] CUVINTE = {
+        "stăpânul", "inelelor", "mândrie", "și", "prejudecată", "război", "pace", "ion", "moara", "cu",
+        "noroc", "enigma", "otiliei", "baltagul", "pădurea", "spânzuraților", "maitreyi", "ultima", "noapte",
+        "dragoste", "întâia", "dimineața", "țara", "fagilor", "castelul", "din", "carpați", "umbra", "vântului",
+        "istoria", "românilor", "amintiri", "copilărie", "poezii", "nuvele", "povestiri", "teatru", "jurnal"
+    };
+
+    public static void main(String[] args) {
+        int numarCarti = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        Biblioteca biblioteca = new Biblioteca();
+        biblioteca.adaugaMembru(new Membru("Cititor", "1"));
+        Random random = new Random(7);
+        long start = System.nanoTime();
+        for (int i = 0; i < numarCarti; i++) {
+            String titlu = CUVINTE[random.nextInt(CUVINTE.length)] + " " + CUVINTE[random.nextInt(CUVINTE.length)]
+                    + " " + Integer.toString(i, 36);
+            String autor = "Autor " + Integer.toString(random.nextInt(numarCarti / 10 + 1), 36);
+            biblioteca.adaugaCarte(new Carte(titlu, autor, 1900 + random.nextInt(125), Integer.toString(i)));
+        }
+        System.out.printf("%,d carti indexate in %,d ms%n", numarCarti, (System.nanoTime() - start) / 1_000_000);
+
+        PrintStream iesire = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        for (int i = 0; i < 20_000; i++) {
+            String isbn = Integer.toString((int) Math.min(numarCarti - 1, Math.abs(random.nextGaussian()) * 200));
+            biblioteca.imprumutaCarte(isbn, "1");
+            biblioteca.returneazaCarte(isbn, "1");
+        }
+        System.setOut(iesire);
+
+        String[] prefixe = new String[100_000];
+        for (int i = 0; i < prefixe.length; i++) {
+            String cuvant = CUVINTE[random.nextInt(CUVINTE.length)];
+            prefixe[i] = cuvant.substring(0, 1 + random.nextInt(cuvant.length()));
+        }
+        int gasite = 0;
+        start = System.nanoTime();
+        for (String prefix : prefixe) {
+            gasite += biblioteca.sugereaza(prefix).size();
+        }
+        System.out.printf("%,d sugestii, %.2f us pe interogare%n", gasite,
+                (System.nanoTime() - start) / 1e3 / prefixe.length);
+        List<String> exemplu = biblioteca.sugereaza("Stapa");
+        System.out.println("\"Stapa\" -> " + exemplu);
+    }
+}
+=== END FILE ===
+
+=== FILE: Catalog.java ===
+package biblioteca;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Cartile si toate indexurile peste ele. Biblioteca tine catalogul curent intr-un camp volatil:
+// adaugarile obisnuite il modifica pe loc, iar importul construieste unul nou, deja dimensionat, si il
+// publica dintr-o data, asa ca cititorii vad fie catalogul vechi, fie pe cel nou intreg.
+class Catalog {
+    final List<Carte> carti;
+    // Primul adaugat castiga, ca la cautarea liniara de dinainte.
+    final ConcurrentHashMap<String, Carte> cartiDupaISBN;
+    final IndexAni indexAni;
+    final IndexTitluri indexTitluri;
+    final Autocompletare autocompletare;
+
+    Catalog() {
+        this(new ArrayList<>(), new ConcurrentHashMap<>(), new IndexAni(), new IndexTitluri(), new Autocompletare());
+    }
+
+    private Catalog(List<Carte> carti, ConcurrentHashMap<String, Carte> cartiDupaISBN, IndexAni indexAni,
+                    IndexTitluri indexTitluri, Autocompletare autocompletare) {
+        this.carti = carti;
+        this.cartiDupaISBN = cartiDupaISBN;
+        this.indexAni = indexAni;
+        this.indexTitluri = indexTitluri;
+        this.autocompletare = autocompletare;
+    }
+
+    void adauga(Carte carte) {
+        indexAni.adauga(carte);
+        carti.add(carte);
+        indexTitluri.adauga(carte);
+        autocompletare.adauga(carte);
+        cartiDupaISBN.putIfAbsent(carte.getIsbn(), carte);
+    }
+
+    // Acelasi catalog, cu termenii cartilor date (ale catalogului binar) adaugati in autocompletare.
+    Catalog cuTermeni(List<Carte> alte) {
+        return new Catalog(carti, cartiDupaISBN, indexAni, indexTitluri, Autocompletare.cuCarti(autocompletare, alte));
+    }
+
+    // Un catalog nou cu cartile celui vechi plus cele noi al caror ISBN nu exista inca; intre doua
+    // carti noi cu acelasi ISBN castiga prima. Popularitatea din autocompletare se pastreaza. Indexurile
+    // vechi sunt copiate si completate doar cu cartile noi, asa ca un import intr-un catalog mare nu
+    // mai plateste din nou sortarea si inserarea tuturor cartilor vechi.
+    static Catalog cuCarti(Catalog vechi, List<Carte> noi) {
+        int capacitate = vechi.carti.size() + noi.size();
+        List<Carte> carti = new ArrayList<>(capacitate);
+        ConcurrentHashMap<String, Carte> cartiDupaISBN = new ConcurrentHashMap<>(capacitate);
+        carti.addAll(vechi.carti);
+        cartiDupaISBN.putAll(vechi.cartiDupaISBN);
+        List<Carte> adaugate = new ArrayList<>(noi.size());
+        for (Carte carte : noi) {
+            if (cartiDupaISBN.putIfAbsent(carte.getIsbn(), carte) == null) {
+                adaugate.add(carte);
+            }
+        }
+        carti.addAll(adaugate);
+
+        return new Catalog(carti, cartiDupaISBN, IndexAni.cuCarti(vechi.indexAni, adaugate),
+                IndexTitluri.cuCarti(vechi.indexTitluri, adaugate), Autocompletare.cuCarti(vechi.autocompletare, adaugate));
+    }
+}
+=== END FILE ===
+
+=== FILE: ImportCatalog.java ===
+package biblioteca;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Citirea in paralel a unui catalog text in UTF-8: "titlu<sep>autor<sep>an<sep>isbn" pe fiecare linie.
+// Fisierul se imparte in bucati care incep fiecare la inceput de linie; fiecare fir isi mapeaza bucata
+// si construieste cartile direct din octeti, fara String-uri pentru linii sau pentru an. Liniile goale
+// sunt ignorate, cele cu alt numar de campuri sau cu an invalid sunt numarate ca respinse.
+public class ImportCatalog {
+    private static final long MARIME_MAXIMA_BUCATA = 1L << 30;
+
+    public static final class Rezultat {
+        public final int adaugate;
+        public final int duplicate;
+        public final int respinse;
+
+        Rezultat(int adaugate, int duplicate, int respinse) {
+            this.adaugate = adaugate;
+            this.duplicate = duplicate;
+            this.respinse = respinse;
+        }
+
+        public String toString() {
+            return "Adaugate: " + adaugate + ", Duplicate: " + duplicate + ", Respinse: " + respinse;
+        }
+    }
+
+    static final class Citire {
+        final List<Carte> carti;
+        final int respinse;
+
+        Citire(List<Carte> carti, int respinse) {
+            this.carti = carti;
+            this.respinse = respinse;
+        }
+    }
+
+    // Cartile in ordinea din fisier.
+    static Citire citeste(Path fisier, char separator, int paralelism) throws IOException {
+        if (separator == '\n' || separator == '\r' || separator > 0x7F) {
+            throw new IllegalArgumentException("Separatorul trebuie sa fie un caracter ASCII, altul decat sfarsitul de linie");
+        }
+        try (FileChannel canal = FileChannel.open(fisier, StandardOpenOption.READ)) {
+            long marime = canal.size();
+            int bucati = (int) Math.max(paralelism * 4L, marime / MARIME_MAXIMA_BUCATA + 1);
+            long[] limite = new long[bucati + 1];
+            limite[bucati] = marime;
+            for (int i = 1; i < bucati; i++) {
+                limite[i] = inceputDeLinie(canal, Math.max(limite[i - 1], marime / bucati * i));
+            }
+
+            ExecutorService fire = Executors.newFixedThreadPool(paralelism);
+            try {
+                List<Future<Citire>> rezultate = new ArrayList<>();
+                for (int i = 0; i < bucati; i++) {
+                    long start = limite[i];
+                    long sfarsit = limite[i + 1];
+                    rezultate.add(fire.submit(() -> citesteBucata(canal, start, sfarsit, (byte) separator)));
+                }
+                List<Carte> carti = new ArrayList<>();
+                int respinse = 0;
+                for (Future<Citire> rezultat : rezultate) {
+                    Citire bucata = rezultat.get();
+                    carti.addAll(bucata.carti);
+                    respinse += bucata.respinse;
+                }
+                return new Citire(carti, respinse);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Import intrerupt", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Eroare la citirea catalogului", e.getCause());
+            } finally {
+                fire.shutdownNow();
+            }
+        }
+    }
+
+    // Prima pozitie de dupa un '\n' aflat la sau dupa pozitie - 1.
+    private static long inceputDeLinie(FileChannel canal, long pozitie) throws IOException {
+        if (pozitie == 0) {
+            return 0;
+        }
+        ByteBuffer tampon = ByteBuffer.allocate(4096);
+        long citit = pozitie - 1;
+        while (true) {
+            tampon.clear();
+            int n = canal.read(tampon, citit);
+            if (n <= 0) {
+                return canal.size();
+            }
+            for (int i = 0; i < n; i++) {
+                if (tampon.get(i) == '\n') {
+                    return citit + i + 1;
+                }
+            }
+            citit += n;
+        }
+    }
+
+    private static Citire citesteBucata(FileChannel canal, long start, long sfarsit, byte separator) throws IOException {
+        MappedByteBuffer date = canal.map(FileChannel.MapMode.READ_ONLY, start, sfarsit - start);
+        int lungime = date.limit();
+        List<Carte> carti = new ArrayList<>(lungime / 64 + 16);
+        byte[] camp = new byte[256];
+        int[] separatori = new int[3];
+        int respinse = 0;
+        int poz = 0;
+        while (poz < lungime) {
+            int sfarsitLinie = poz;
+            int campuri = 0;
+            while (sfarsitLinie < lungime) {
+                byte b = date.get(sfarsitLinie);
+                if (b == '\n') {
+                    break;
+                }
+                if (b == separator) {
+                    if (campuri < 3) {
+                        separatori[campuri] = sfarsitLinie;
+                    }
+                    campuri++;
+                }
+                sfarsitLinie++;
+            }
+            int capat = sfarsitLinie > poz && date.get(sfarsitLinie - 1) == '\r' ? sfarsitLinie - 1 : sfarsitLinie;
+            if (capat > poz) {
+                int an = campuri == 3 ? an(date, separatori[1] + 1, separatori[2]) : Integer.MIN_VALUE;
+                if (an < IndexAni.ANUL_MINIM || an > IndexAni.ANUL_MAXIM) {
+                    respinse++;
+                } else {
+                    if (camp.length < capat - poz) {
+                        camp = new byte[capat - poz];
+                    }
+                    String titlu = text(date, poz, separatori[0], camp);
+                    String autor = text(date, separatori[0] + 1, separatori[1], camp);
+                    String isbn = text(date, separatori[2] + 1, capat, camp);
+                    carti.add(new Carte(titlu, autor, an, isbn));
+                }
+            }
+            poz = sfarsitLinie + 1;
+        }
+        return new Citire(carti, respinse);
+    }
+
+    private static String text(MappedByteBuffer date, int start, int sfarsit, byte[] camp) {
+        date.get(start, camp, 0, sfarsit - start);
+        return new String(camp, 0, sfarsit - start, StandardCharsets.UTF_8);
+    }
+
+    // Integer.MIN_VALUE daca nu e un numar intreg de cel mult 9 cifre.
+    private static int an(MappedByteBuffer date, int start, int sfarsit) {
+        boolean negativ = start < sfarsit && date.get(start) == '-';
+        int poz = negativ ? start + 1 : start;
+        if (poz == sfarsit || sfarsit - poz > 9) {
+            return Integer.MIN_VALUE;
+        }
+        int valoare = 0;
+        for (; poz < sfarsit; poz++) {
+            int cifra = date.get(poz) - '0';
+            if (cifra < 0 || cifra > 9) {
+                return Integer.MIN_VALUE;
+            }
+            valoare = valoare * 10 + cifra;
+        }
+        return negativ ? -valoare : valoare;
+    }
+}
+=== END FILE ===
+
+=== FILE: PerformantaImport.java ===
+package biblioteca;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+// Scrie un catalog sintetic (implicit 2M inregistrari, cu ~1% ISBN-uri repetate si cateva linii
+// stricate), il importa cu cate fire sunt procesoare si afiseaza ritmul in inregistrari pe minut.
+// Apoi importa inca 1% carti noi peste catalogul plin, cat costa un import mic intr-un catalog mare.
+public class PerformantaImport {
+    public static void main(String[] args) throws IOException {
+        int numar = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int paralelism = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        Path fisier = Files.createTempFile("catalog", ".tsv");
+        Path completare = Files.createTempFile("completare", ".tsv");
+        try {
+            Random random = new Random(3);
+            scrie(fisier, 0, numar, numar, random);
+            scrie(completare, numar, numar + numar / 100, numar, random);
+            System.out.printf("fisier de %,d MB, %d fire%n", Files.size(fisier) >> 20, paralelism);
+
+            Biblioteca biblioteca = new Biblioteca();
+            long start = System.nanoTime();
+            ImportCatalog.Rezultat rezultat = biblioteca.importaCatalog(fisier, '\t', paralelism);
+            long ms = (System.nanoTime() - start) / 1_000_000;
+            System.out.println(rezultat);
+            System.out.printf("%,d ms, %,d inregistrari pe minut%n", ms, numar * 60_000L / Math.max(1, ms));
+
+            start = System.nanoTime();
+            rezultat = biblioteca.importaCatalog(completare, '\t', paralelism);
+            ms = (System.nanoTime() - start) / 1_000_000;
+            System.out.println(rezultat);
+            System.out.printf("completare de %,d peste catalogul plin: %,d ms%n", numar / 100, ms);
+        } finally {
+            Files.deleteIfExists(fisier);
+            Files.deleteIfExists(completare);
+        }
+    }
+
+    private static void scrie(Path fisier, int de, int pana, int numar, Random random) throws IOException {
+        try (BufferedWriter scriere = Files.newBufferedWriter(fisier, StandardCharsets.UTF_8)) {
+            for (int i = de; i < pana; i++) {
+                if (i % 100_000 == 99_999) {
+                    scriere.write("linie fara campuri\n");
+                    continue;
+                }
+                int isbn = random.nextInt(100) == 0 ? random.nextInt(i + 1) : i;
+                scriere.write("Povestea nr. " + Integer.toString(i, 36) + " și a țării\tAutor "
+                        + random.nextInt(numar / 20 + 1) + "\t" + (1800 + random.nextInt(225)) + "\t978-" + isbn + "\n");
+            }
+        }
+    }
+}
+=== END FILE ===
+
+=== FILE: CatalogMapat.java ===
+package biblioteca;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Catalog binar versionat, citit prin mapare in memorie. Formatul (big-endian):
+//   antet de 64 de octeti: MAGIC, VERSIUNE, numarul de carti si pozitiile sectiunilor;
+//   arena de texte: pentru fiecare carte titlul si autorul (lungime pe 2 octeti + UTF-8), apoi ISBN-ul
+//   (lungime pe 1 octet + UTF-8);
+//   inregistrari de 16 octeti in ordinea titlurilor: pozitia textelor in arena, anul, 4 octeti rezervati;
+//   trei permutari de int-uri: dupa ISBN (octetii UTF-8), dupa an si dupa titlul simplificat.
+// Fisierul se mapeaza in ferestre de 1 GB, iar scriitorul nu lasa textele unei carti sa treaca peste
+// marginea unei ferestre. Deschiderea nu citeste nicio carte, asa ca dureaza la fel pentru orice
+// marime, iar paginile mapate doar pentru citire sunt impartite intre procese prin cache-ul sistemului.
+// Deschis de o Biblioteca, catalogul primeste registrul ei de imprumuturi, din care vederile isi citesc
+// starea; fisierul nu o contine.
+public final class CatalogMapat {
+    public static final int MAGIC = 0x42494243;
+    public static final int VERSIUNE = 1;
+
+    private static final int MARIME_ANTET = 64;
+    private static final int MARIME_INREGISTRARE = 16;
+    private static final int BITI_FEREASTRA = 30;
+    private static final long FEREASTRA = 1L << BITI_FEREASTRA;
+
+    private final ByteBuffer[] ferestre;
+    private final int numarCarti;
+    private final long pozInregistrari;
+    private final long pozDupaISBN;
+    private final long pozDupaAn;
+    private final long pozDupaTitlu;
+    private final Map<String, String> imprumuturi;
+
+    private CatalogMapat(ByteBuffer[] ferestre, int numarCarti, long pozInregistrari, long pozDupaISBN,
+                         long pozDupaAn, long pozDupaTitlu, Map<String, String> imprumuturi) {
+        this.ferestre = ferestre;
+        this.numarCarti = numarCarti;
+        this.pozInregistrari = pozInregistrari;
+        this.pozDupaISBN = pozDupaISBN;
+        this.pozDupaAn = pozDupaAn;
+        this.pozDupaTitlu = pozDupaTitlu;
+        this.imprumuturi = imprumuturi;
+    }
+
+    public static CatalogMapat deschide(Path fisier) throws IOException {
+        return deschide(fisier, null);
+    }
+
+    static CatalogMapat deschide(Path fisier, Map<String, String> imprumuturi) throws IOException {
+        try (FileChannel canal = FileChannel.open(fisier, StandardOpenOption.READ)) {
+            long marime = canal.size();
+            if (marime < MARIME_ANTET) {
+                throw new IOException("Fisierul nu este un catalog binar: " + fisier);
+            }
+            ByteBuffer[] ferestre = new ByteBuffer[(int) ((marime + FEREASTRA - 1) >>> BITI_FEREASTRA)];
+            for (int i = 0; i < ferestre.length; i++) {
+                long start = i * FEREASTRA;
+                ferestre[i] = canal.map(FileChannel.MapMode.READ_ONLY, start, Math.min(FEREASTRA, marime - start));
+            }
+            ByteBuffer antet = ferestre[0];
+            if (antet.getInt(0) != MAGIC) {
+                throw new IOException("Fisierul nu este un catalog binar: " + fisier);
+            }
+            if (antet.getInt(4) != VERSIUNE) {
+                throw new IOException("Versiune de catalog nesuportata: " + antet.getInt(4));
+            }
+            long numarCarti = antet.getLong(8);
+            long pozInregistrari = antet.getLong(16);
+            long pozDupaISBN = antet.getLong(24);
+            long pozDupaAn = antet.getLong(32);
+            long pozDupaTitlu = antet.getLong(40);
+            if (numarCarti < 0 || numarCarti > Integer.MAX_VALUE
+                    || pozInregistrari + numarCarti * MARIME_INREGISTRARE > pozDupaISBN
+                    || pozDupaISBN + numarCarti * 4 > pozDupaAn || pozDupaAn + numarCarti * 4 > pozDupaTitlu
+                    || pozDupaTitlu + numarCarti * 4 > marime) {
+                throw new IOException("Catalog binar trunchiat sau corupt: " + fisier);
+            }
+            return new CatalogMapat(ferestre, (int) numarCarti, pozInregistrari, pozDupaISBN, pozDupaAn, pozDupaTitlu,
+                    imprumuturi);
+        }
+    }
+
+    // Cartile cu acelasi ISBN apar o singura data (prima castiga), in ordinea titlurilor. Scriem alaturi
+    // si apoi redenumim: cine are vechiul fisier mapat il pastreaza intreg.
+    public static void scrie(Path fisier, Collection<Carte> carti) throws IOException {
+        Path temporar = fisier.resolveSibling(fisier.getFileName() + ".tmp");
+        try {
+            scrieIn(temporar, carti);
+            Files.move(temporar, fisier, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporar);
+        }
+    }
+
+    private static void scrieIn(Path fisier, Collection<Carte> carti) throws IOException {
+        Map<String, Carte> unice = new LinkedHashMap<>();
+        for (Carte carte : carti) {
+            unice.putIfAbsent(carte.getIsbn(), carte);
+        }
+        Carte[] candidati = unice.values().toArray(new Carte[0]);
+        int numar = candidati.length;
+        // Cheile se calculeaza o data pe carte, nu la fiecare comparatie: o CarteMapata reface titlul
+        // simplificat la fiecare apel. Sortarea indicilor e stabila, ca si cea dupa DUPA_TITLU_SI_AUTOR.
+        byte[][] cheiTitlu = new byte[numar][];
+        byte[][] cheiAutor = new byte[numar][];
+        String[] simplificate = new String[numar];
+        Arrays.parallelSetAll(cheiTitlu, i -> candidati[i].cheieTitlu());
+        Arrays.parallelSetAll(cheiAutor, i -> candidati[i].cheieAutor());
+        Arrays.parallelSetAll(simplificate, i -> candidati[i].titluSimplificat());
+        Integer[] ordine = ordoneaza(numar, (a, b) -> {
+            int dupaTitlu = ColatieRomana.compara(cheiTitlu[a], cheiTitlu[b]);
+            return dupaTitlu != 0 ? dupaTitlu : ColatieRomana.compara(cheiAutor[a], cheiAutor[b]);
+        });
+        Carte[] ordonate = new Carte[numar];
+        String[] titluriSimplificate = new String[numar];
+        for (int i = 0; i < numar; i++) {
+            ordonate[i] = candidati[ordine[i]];
+            titluriSimplificate[i] = simplificate[ordine[i]];
+        }
+        long[] pozitii = new long[numar];
+        byte[][] isbnuri = new byte[numar][];
+
+        try (FileChannel canal = FileChannel.open(fisier, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+             DataOutputStream iesire = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(canal), 1 << 16))) {
+            iesire.write(new byte[MARIME_ANTET]);
+            long poz = MARIME_ANTET;
+            for (int i = 0; i < numar; i++) {
+                byte[] titlu = utf8(ordonate[i].getTitlu(), 0xFFFF);
+                byte[] autor = utf8(ordonate[i].getAutor(), 0xFFFF);
+                isbnuri[i] = utf8(ordonate[i].getIsbn(), 0xFF);
+                int grup = 2 + titlu.length + 2 + autor.length + 1 + isbnuri[i].length;
+                if ((poz >>> BITI_FEREASTRA) != ((poz + grup - 1) >>> BITI_FEREASTRA)) {
+                    poz = umple(iesire, poz, FEREASTRA);
+                }
+                pozitii[i] = poz;
+                iesire.writeShort(titlu.length);
+                iesire.write(titlu);
+                iesire.writeShort(autor.length);
+                iesire.write(autor);
+                iesire.writeByte(isbnuri[i].length);
+                iesire.write(isbnuri[i]);
+                poz += grup;
+            }
+
+            long pozInregistrari = umple(iesire, poz, MARIME_INREGISTRARE);
+            for (int i = 0; i < numar; i++) {
+                iesire.writeLong(pozitii[i]);
+                iesire.writeInt(ordonate[i].getAnAparitie());
+                iesire.writeInt(0);
+            }
+            long pozDupaISBN = pozInregistrari + (long) numar * MARIME_INREGISTRARE;
+            scriePermutare(iesire, numar, (a, b) -> Arrays.compareUnsigned(isbnuri[a], isbnuri[b]));
+            long pozDupaAn = pozDupaISBN + 4L * numar;
+            scriePermutare(iesire, numar, (a, b) -> Integer.compare(ordonate[a].getAnAparitie(), ordonate[b].getAnAparitie()));
+            long pozDupaTitlu = pozDupaAn + 4L * numar;
+            scriePermutare(iesire, numar, (a, b) -> titluriSimplificate[a].compareTo(titluriSimplificate[b]));
+            iesire.flush();
+
+            ByteBuffer antet = ByteBuffer.allocate(MARIME_ANTET);
+            antet.putInt(MAGIC).putInt(VERSIUNE).putLong(numar).putLong(pozInregistrari)
+                    .putLong(pozDupaISBN).putLong(pozDupaAn).putLong(pozDupaTitlu);
+            antet.clear();
+            canal.write(antet, 0);
+        }
+    }
+
+    public int numarCarti() {
+        return numarCarti;
+    }
+
+    // A i-a carte in ordinea titlurilor.
+    public Carte carte(int i) {
+        return new CarteMapata(this, i);
+    }
+
+    public Carte dupaISBN(String isbn) {
+        byte[] cautat = isbn.getBytes(StandardCharsets.UTF_8);
+        int stanga = 0;
+        int dreapta = numarCarti - 1;
+        while (stanga <= dreapta) {
+            int mijloc = (stanga + dreapta) >>> 1;
+            int carte = citesteInt(pozDupaISBN + 4L * mijloc);
+            int comparatie = comparaIsbn(carte, cautat);
+            if (comparatie == 0) {
+                return carte(carte);
+            }
+            if (comparatie < 0) {
+                stanga = mijloc + 1;
+            } else {
+                dreapta = mijloc - 1;
+            }
+        }
+        return null;
+    }
+
+    public List<Carte> dupaTitlu(String titlu) {
+        String cheie = ColatieRomana.simplifica(titlu);
+        int stanga = 0;
+        int dreapta = numarCarti;
+        while (stanga < dreapta) {
+            int mijloc = (stanga + dreapta) >>> 1;
+            String simplificat = ColatieRomana.simplifica(titlu(citesteInt(pozDupaTitlu + 4L * mijloc)));
+            if (simplificat.compareTo(cheie) < 0) {
+                stanga = mijloc + 1;
+            } else {
+                dreapta = mijloc;
+            }
+        }
+        List<Carte> gasite = new ArrayList<>();
+        for (int i = stanga; i < numarCarti; i++) {
+            int carte = citesteInt(pozDupaTitlu + 4L * i);
+            if (!ColatieRomana.simplifica(titlu(carte)).equals(cheie)) {
+                break;
+            }
+            gasite.add(carte(carte));
+        }
+        return gasite;
+    }
+
+    public int numaraIntreAni(int deLa, int panaLa) {
+        return deLa > panaLa ? 0 : primaDupaAn(panaLa + 1L) - primaDupaAn(deLa);
+    }
+
+    // Crescator dupa an, iar in acelasi an in ordinea titlurilor.
+    public List<Carte> intreAni(int deLa, int panaLa) {
+        List<Carte> rezultat = new ArrayList<>();
+        if (deLa > panaLa) {
+            return rezultat;
+        }
+        int sfarsit = primaDupaAn(panaLa + 1L);
+        for (int i = primaDupaAn(deLa); i < sfarsit; i++) {
+            rezultat.add(carte(citesteInt(pozDupaAn + 4L * i)));
+        }
+        return rezultat;
+    }
+
+    String titlu(int carte) {
+        return text(pozitieTexte(carte), 2);
+    }
+
+    String autor(int carte) {
+        long poz = pozitieTexte(carte);
+        return text(poz + 2 + lungime(poz, 2), 2);
+    }
+
+    String isbn(int carte) {
+        return text(pozitieIsbn(carte), 1);
+    }
+
+    boolean imprumutata(int carte) {
+        return imprumuturi != null && imprumuturi.containsKey(isbn(carte));
+    }
+
+    int an(int carte) {
+        return citesteInt(pozInregistrari + (long) carte * MARIME_INREGISTRARE + 8);
+    }
+
+    private long pozitieTexte(int carte) {
+        long poz = pozInregistrari + (long) carte * MARIME_INREGISTRARE;
+        return fereastra(poz).getLong(local(poz));
+    }
+
+    private long pozitieIsbn(int carte) {
+        long poz = pozitieTexte(carte);
+        poz += 2 + lungime(poz, 2);
+        return poz + 2 + lungime(poz, 2);
+    }
+
+    private int comparaIsbn(int carte, byte[] cautat) {
+        long poz = pozitieIsbn(carte);
+        ByteBuffer fereastra = fereastra(poz);
+        int start = local(poz) + 1;
+        int lungime = lungime(poz, 1);
+        for (int i = 0; i < lungime && i < cautat.length; i++) {
+            int diferenta = (fereastra.get(start + i) & 0xFF) - (cautat[i] & 0xFF);
+            if (diferenta != 0) {
+                return diferenta;
+            }
+        }
+        return lungime - cautat.length;
+    }
+
+    // Prima pozitie din permutarea dupa an cu anul >= an.
+    private int primaDupaAn(long an) {
+        int stanga = 0;
+        int dreapta = numarCarti;
+        while (stanga < dreapta) {
+            int mijloc = (stanga + dreapta) >>> 1;
+            if (an(citesteInt(pozDupaAn + 4L * mijloc)) < an) {
+                stanga = mijloc + 1;
+            } else {
+                dreapta = mijloc;
+            }
+        }
+        return stanga;
+    }
+
+    private String text(long poz, int octetiLungime) {
+        byte[] octeti = new byte[lungime(poz, octetiLungime)];
+        fereastra(poz).get(local(poz) + octetiLungime, octeti);
+        return new String(octeti, StandardCharsets.UTF_8);
+    }
+
+    private int lungime(long poz, int octeti) {
+        ByteBuffer fereastra = fereastra(poz);
+        return octeti == 2 ? fereastra.getShort(local(poz)) & 0xFFFF : fereastra.get(local(poz)) & 0xFF;
+    }
+
+    private int citesteInt(long poz) {
+        return fereastra(poz).getInt(local(poz));
+    }
+
+    private ByteBuffer fereastra(long poz) {
+        return ferestre[(int) (poz >>> BITI_FEREASTRA)];
+    }
+
+    private static int local(long poz) {
+        return (int) (poz & (FEREASTRA - 1));
+    }
+
+    private static byte[] utf8(String text, int maxim) {
+        byte[] octeti = text.getBytes(StandardCharsets.UTF_8);
+        if (octeti.length > maxim) {
+            throw new IllegalArgumentException("Text prea lung pentru catalogul binar: " + octeti.length + " octeti");
+        }
+        return octeti;
+    }
+
+    // Completeaza cu zerouri pana la urmatorul multiplu de aliniere; intoarce noua pozitie.
+    private static long umple(DataOutputStream iesire, long poz, long aliniere) throws IOException {
+        long tinta = (poz + aliniere - 1) / aliniere * aliniere;
+        for (long i = poz; i < tinta; i++) {
+            iesire.write(0);
+        }
+        return tinta;
+    }
+
+    private interface ComparatorIndici {
+        int compara(int a, int b);
+    }
+
+    private static void scriePermutare(DataOutputStream iesire, int numar, ComparatorIndici comparator) throws IOException {
+        for (Integer carte : ordoneaza(numar, comparator)) {
+            iesire.writeInt(carte);
+        }
+    }
+
+    private static Integer[] ordoneaza(int numar, ComparatorIndici comparator) {
+        Integer[] ordine = new Integer[numar];
+        for (int i = 0; i < numar; i++) {
+            ordine[i] = i;
+        }
+        Arrays.parallelSort(ordine, comparator::compara);
+        return ordine;
+    }
+}
+=== END FILE ===
+
+=== FILE: CarteMapata.java ===
+package biblioteca;
+
+// Vedere peste o carte din CatalogMapat: nu tine nimic pe heap in afara de pozitie, iar fiecare getter
+// citeste direct din maparea fisierului. Cheile de colatie se calculeaza la prima cerere si raman in
+// vedere; starea de imprumut vine din registrul bibliotecii care a deschis catalogul.
+final class CarteMapata extends Carte {
+    private final CatalogMapat catalog;
+    private final int index;
+    private byte[] cheieTitlu;
+    private byte[] cheieAutor;
+
+    CarteMapata(CatalogMapat catalog, int index) {
+        this.catalog = catalog;
+        this.index = index;
+    }
+
+    public String getTitlu() {
+        return catalog.titlu(index);
+    }
+
+    public String getAutor() {
+        return catalog.autor(index);
+    }
+
+    public int getAnAparitie() {
+        return catalog.an(index);
+    }
+
+    public String getIsbn() {
+        return catalog.isbn(index);
+    }
+
+    public boolean isImprumutata() {
+        return catalog.imprumutata(index);
+    }
+
+    byte[] cheieTitlu() {
+        if (cheieTitlu == null) {
+            cheieTitlu = ColatieRomana.cheie(getTitlu());
+        }
+        return cheieTitlu;
+    }
+
+    byte[] cheieAutor() {
+        if (cheieAutor == null) {
+            cheieAutor = ColatieRomana.cheie(getAutor());
+        }
+        return cheieAutor;
+    }
+
+    String titluSimplificat() {
+        return ColatieRomana.simplifica(getTitlu());
+    }
+}
+=== END FILE ===
+
+=== FILE: PerformantaCatalogBinar.java ===
+package biblioteca;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Scrie un catalog binar sintetic (implicit 2M carti), apoi masoara deschiderea lui intr-o biblioteca
+// noua (care construieste si autocompletarea peste el), heap-ul folosit dupa deschidere si cautarile
+// prin vederile mapate.
+public class PerformantaCatalogBinar {
+    public static void main(String[] args) throws IOException {
+        int numar = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        Path fisier = Files.createTempFile("catalog", ".bin");
+        try {
+            Random random = new Random(5);
+            List<Carte> carti = new ArrayList<>(numar);
+            for (int i = 0; i < numar; i++) {
+                carti.add(new Carte("Cronica nr. " + Integer.toString(i, 36) + " a Țării de Sus",
+                        "Autor " + random.nextInt(numar / 20 + 1), 1800 + random.nextInt(225), "978-" + i));
+            }
+            long start = System.nanoTime();
+            CatalogMapat.scrie(fisier, carti);
+            System.out.printf("scris %,d MB in %,d ms%n", Files.size(fisier) >> 20, (System.nanoTime() - start) / 1_000_000);
+            carti = null;
+            System.gc();
+
+            long heapInainte = heapFolosit();
+            start = System.nanoTime();
+            Biblioteca biblioteca = new Biblioteca();
+            biblioteca.deschideCatalogBinar(fisier);
+            System.out.printf("deschis in %.2f ms, heap %+,d KB%n", (System.nanoTime() - start) / 1e6,
+                    (heapFolosit() - heapInainte) >> 10);
+
+            start = System.nanoTime();
+            int gasite = 0;
+            for (int i = 0; i < 100_000; i++) {
+                Carte carte = biblioteca.gasesteCarteDupaISBN("978-" + random.nextInt(numar));
+                if (carte != null && carte.getTitlu() != null) {
+                    gasite++;
+                }
+            }
+            System.out.printf("%,d cautari dupa ISBN, %.2f us fiecare%n", gasite, (System.nanoTime() - start) / 1e3 / 100_000);
+            start = System.nanoTime();
+            int intreAni = biblioteca.numaraCartiIntreAni(1900, 1950);
+            System.out.printf("1900-1950: %,d carti in %.3f ms%n", intreAni, (System.nanoTime() - start) / 1e6);
+            System.out.println(biblioteca.gasesteCartiDupaTitlu("cronica nr. 1 a tarii de sus"));
+            System.out.println(biblioteca.sugereaza("cronica nr. 1a"));
+        } finally {
+            Files.deleteIfExists(fisier);
+        }
+    }
+
+    private static long heapFolosit() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
+=== END FILE ===
+
 === FILE: Main.java ===
 package biblioteca;
 